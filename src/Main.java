@@ -3,32 +3,114 @@ import node.exception.contact.InvalidIPException;
 import node.exception.contact.InvalidPortException;
 import node.exception.contact.MustSetSizeIDException;
 import node.exception.contact.SizeIDCanBeSetOnlyOneTimeException;
+import virtual_net.Coordinator;
 import virtual_net.Internet;
+import virtual_net.TimingWheel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class Main {
 	
-	public static void main(String[] args) throws SizeIDCanBeSetOnlyOneTimeException, InvalidPortException, InvalidIPException, MustSetSizeIDException  {
+	public static void main(String[] args) throws SizeIDCanBeSetOnlyOneTimeException, InvalidPortException, InvalidIPException, MustSetSizeIDException, InterruptedException, IOException  {
 		
 		int m = Integer.parseInt(args[0]);//Number of bit Key
 		int n = Integer.parseInt(args[1]);//Number of Node in the network
 		int k = Integer.parseInt(args[2]);//Number of node in a single bucket
+		//Organization of the routing tables (flat or tree), flat by default
+		Node.TableType type = args.length > 3 ? Node.TableType.valueOf(args[3].toUpperCase()) : Node.TableType.FLAT;
+		//Number of threads, if > 0 each node has its own mailbox and the nodes join in parallel
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		//Refresh interval (ms of simulated time), if > 0 the network is maintained for two intervals
+		long refresh = args.length > 5 ? Long.parseLong(args[5]) : 0;
+		//Number of processes among which the network is split (power of 2)
+		int shards = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+		//Fraction of nodes that fail before comparing the lookup strategies, the
+		//comparison is done only if it's given (0 to compare without failures)
+		double failures = args.length > 7 ? Double.parseDouble(args[7]) : 0;
+		//Number of paths of the DISJOINT lookups
+		int disjointPaths = args.length > 8 ? Integer.parseInt(args[8]) : 3;
 		
-		Internet internetto = new Internet();
-		System.out.println("M:"+m+" N:"+n+" K:"+k);
+		System.out.println("M:"+m+" N:"+n+" K:"+k+" Table:"+type+" Threads:"+threads+" Shards:"+shards);
 		System.out.println("Creo la rete Kademlia...");
 		long time = System.nanoTime();
 		
+		if(m < 63 && n > 1L << m)
+			throw new IllegalArgumentException("There are only 2^"+m+" IDs for "+n+" nodes");
+		
 		// Set size for all node.
 		Node.setSizeID(m);
 		Node.setSizeBuckets(k);
 		
-		for(int i = 0; i < n; i++)
-			new Node(internetto);
+		if(shards > 1) {
+			//The shards only build the network and save its edges
+			System.out.println("Con piu' shard salvo solo gli archi della rete, senza statistiche");
+			if(refresh > 0 || args.length > 7)
+				System.out.println("Attenzione: refresh, guasti e percorsi disgiunti non sono supportati con piu' shard, li ignoro");
+			Coordinator.run(shards, m, n, k, type, Math.max(1, threads), "m-"+m+"_n-"+n+"_k-"+k);
+			time = System.nanoTime() - time;
+			System.out.println((time / 1000000)+"millisec");
+			return;
+		}
+		
+		Internet internetto = threads > 0 ? new Internet(new ForkJoinPool(threads)) : new Internet();
+		//The nodes measure the RTTs of the links from the join on
+		internetto.setLinkRTT(10, 200);
+		Node.setDisjointPaths(disjointPaths);
+		if(threads > 0) {
+			ExecutorService joining = Executors.newFixedThreadPool(threads);
+			List<Future<Node>> joins = new ArrayList<Future<Node>>();
+			for(int i = 0; i < n; i++)
+				joins.add(joining.submit(() -> new Node(internetto, type)));
+			joining.shutdown();
+			//The first node that can't join (e.g. no free IDs) stops the run
+			try {
+				for(Future<Node> join : joins)
+					join.get();
+			} catch (ExecutionException e) {
+				joining.shutdownNow();
+				throw new IllegalStateException("Kademlia network not built", e.getCause());
+			}
+			internetto.awaitIdle();
+		} else
+			for(int i = 0; i < n; i++)
+				new Node(internetto, type);
 
 		time = System.nanoTime() - time;
 		
 		System.out.println((time / 1000000)+"millisec");
+		System.out.println(internetto.getTableStats(1000));
+
+		if(refresh > 0) {
+			System.out.println("Mantengo la rete...");
+			Node.setRefreshInterval(refresh);
+			//The refreshes of the nodes expired in the same tick run in parallel
+			ExecutorService refreshing = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+			TimingWheel wheel = new TimingWheel(Math.max(1, refresh / 64), 512,
+					refreshing != null ? refreshing : Runnable::run);
+			internetto.startMaintenance(wheel);
+			wheel.advance(2 * refresh);
+			if(refreshing != null)
+				refreshing.shutdown();
+			internetto.awaitIdle();
+			System.out.println(internetto.getTableStats(1000));
+		}
+		
 		System.out.println("Sto salvando la rete...");
 		internetto.saveNetwork("m-"+m+"_n-"+n+"_k-"+k);
+		
+		//The lookups change the tables, so they come after the network is saved
+		if(args.length > 7) {
+			System.out.println("Confronto le strategie di lookup...");
+			internetto.failNodes(failures);
+			for(Node.LookupMode mode : Node.LookupMode.values())
+				System.out.println(internetto.getLookupStats(200, mode));
+		}
 	}
 }
@@ -44,7 +44,73 @@ public class Contact {
 			farID[0] = (byte) ((farID[0] & 0xFF) % Math.pow(2, 8-del));
 			return new ID(farID);
 		}
-		
+
+		/**
+		 * Generates a random ID of sizeID bits.
+		 * @return New random ID
+		 */
+		public static ID random() {
+			byte[] randID = new byte[(sizeID + 7) / 8];
+			for(int i = 0; i < randID.length; i++)
+				randID[i] = (byte) (Math.random() * 256);
+			byte del = (byte) ((randID.length*8) - sizeID);
+			randID[0] = (byte) ((randID[0] & 0xFF) % Math.pow(2, 8-del));
+			return new ID(randID);
+		}
+
+		/**
+		 * Returns the bit of the ID in the requested position, the position 0
+		 * is the most significant bit of the sizeID bits that make up the ID.
+		 * @param index position of the bit
+		 * @return 0 or 1
+		 */
+		public int getBit(int index) {
+			int pos = index + (id.length * 8 - sizeID);
+			return (id[pos / 8] >> (7 - pos % 8)) & 0x1;
+		}
+
+		/**
+		 * Returns a copy of the ID with the bit in the requested position (as
+		 * in getBit) set to the value.
+		 * @param index position of the bit
+		 * @param value 0 or 1
+		 * @return New ID
+		 */
+		public ID withBit(int index, int value) {
+			byte[] newID = id.clone();
+			int pos = index + (id.length * 8 - sizeID);
+			if(value == 0)
+				newID[pos / 8] &= ~(1 << (7 - pos % 8));
+			else
+				newID[pos / 8] |= 1 << (7 - pos % 8);
+			return new ID(newID);
+		}
+
+		/**
+		 * Generates a random ID that has the first prefixLength bits equal to
+		 * this ID, that is a random ID in the range of a bucket.
+		 * @param prefixLength number of bits to keep
+		 * @return New random ID
+		 */
+		public ID randomSuffix(int prefixLength) {
+			byte[] randID = random().id;
+			int pos = prefixLength + (id.length * 8 - sizeID);
+			for(int i = 0; i < pos / 8; i++)
+				randID[i] = id[i];
+			if(pos % 8 != 0) {
+				int mask = 0xFF << (8 - pos % 8);
+				randID[pos / 8] = (byte) ((id[pos / 8] & mask) | (randID[pos / 8] & ~mask));
+			}
+			return new ID(randID);
+		}
+
+		/**
+		 * @return copy of the bytes of the ID.
+		 */
+		public byte[] getBytes() {
+			return id.clone();
+		}
+
 		@Override
 		public int hashCode() {
 			final int prime = 31;
@@ -75,6 +141,36 @@ public class Contact {
 		    return new ID(out);
 		}
 		
+		/**
+		 * Compares the distances of a and b from the target without
+		 * allocating the XOR of the ids.
+		 * @return negative if a is closer, positive if b is closer, 0 if equal
+		 */
+		public static int compareDistance(ID a, ID b, ID target) {
+			for(int i = 0; i < target.id.length; i++) {
+				int da = (a.id[i] ^ target.id[i]) & 0xFF;
+				int db = (b.id[i] ^ target.id[i]) & 0xFF;
+				if(da != db)
+					return da - db;
+			}
+			return 0;
+		}
+
+		/**
+		 * Logarithm (lower integer part) of the distance between a and b, that
+		 * is the position of the first different bit counted from the least
+		 * significant, computed without allocating the XOR of the ids.
+		 * @return the logarithm, -1 if the ids are equal
+		 */
+		public static int log2Distance(ID a, ID b) {
+			for(int i = 0; i < a.id.length; i++) {
+				int x = (a.id[i] ^ b.id[i]) & 0xFF;
+				if(x != 0)
+					return (a.id.length - 1 - i) * 8 + (31 - Integer.numberOfLeadingZeros(x));
+			}
+			return -1;
+		}
+		
 		public static int compare(ID a, ID b) {
 			int res = 0;
 			if(a.id.length != b.id.length) 
@@ -92,22 +188,6 @@ public class Contact {
 		public String toString() {
 			return convertBytesToString(id);	
 		}
-
-		public int log2() {
-			//Value calculated in case the number of bytes of the id is not multiple of bytes
-			int siz = sizeID + (id.length * 8 - sizeID);
-			
-			int res = 0;
-			for (int i = 0; i < id.length; i++)
-				//Calculate the logarithm(b=2) of the first byte other than zero and then actually calculate the bucket.
-				if(id[i] != 0) {
-					int currLog = (int) Math.floor(Math.log(id[i])/Math.log(2));
-					res = siz - (i * 8) - (8 - currLog);
-					break;
-				}
-			
-			return res;
-		}
 	}
 	
 	private static int sizeID = -1;
@@ -162,6 +242,24 @@ public class Contact {
         computeID();
 	}
 	
+	/**
+	 * Rebuilds a contact whose ID has already been computed, e.g. received
+	 * from another process of the simulation.
+	 * 
+	 * @param ip four bytes of the IP
+	 * @param port port of the contact
+	 * @param id ID of the contact
+	 */
+	public Contact(byte[] ip, short port, ID id) {
+		super();
+		if(sizeID == -1) 
+			throw new MustSetSizeIDException();
+		
+		this.ip = ip.clone();
+		this.port = port;
+		this.id = id;
+	}
+	
 	private void computeID() {
     	byte[] temp = new byte[6];
 		for(int i  = 0; i < 4 ; i++)
@@ -185,7 +283,7 @@ public class Contact {
 	}
 	
 	public static int compareFormID(Contact a, Contact b, ID id) {
-		return ID.compare(ID.xorD(a.getID(), id), ID.xorD(b.getID(), id));
+		return ID.compareDistance(a.getID(), b.getID(), id);
 	}
 
 	public static void sort(LinkedList<Contact> list, ID id) {
@@ -226,4 +324,9 @@ public class Contact {
 		}  
 		return false;
 	}
-}
\ No newline at end of file
+
+	@Override
+	public int hashCode() {
+		return id.hashCode();
+	}
+}
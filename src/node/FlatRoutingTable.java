@@ -0,0 +1,182 @@
+package node;
+
+import java.util.LinkedList;
+
+import node.Contact.ID;
+import node.exception.CantAddContactException;
+
+/**
+ * Routing table that keeps one bucket for each bit of the ID in a fixed array,
+ * the bucket i contains the contacts whose distance from the owner has the
+ * logarithm equal to i.
+ *
+ * @see RoutingTable
+ */
+class FlatRoutingTable extends RoutingTable {
+
+	// list of buckets on the rooting table
+	private KBucket[] table;
+
+	/**
+	 * [FlatRoutingTable description]
+	 * 
+	 * @param owner	Node owner of the routing table.
+	 */
+	public FlatRoutingTable(Node owner) {
+		super(owner);
+		table = new KBucket[lengthTable];
+	}
+
+	/**
+	 * Aggiunge il conttatto specificato all'interno della tabela di routing.
+	 * Il contatto viene inserito all'interno del bucket corrispondente al
+	 * numero di bit in comune tra l'ID del nodo che voglio aggiungere e il
+	 * mio ID(owner).
+	 *
+	 * @param contact Contact Information
+	 * @throws CantAddContactException You cannot enter the contact if it is
+	 * null or it's the owner.
+	 */
+	@Override
+	public void addContact(Contact contact) throws CantAddContactException {
+		if(contact == null)
+			throw new CantAddContactException("Can't add Null contact");
+		if(owner.getContact().equals(contact)) return;
+
+		int bucketIndex = ID.log2Distance(owner.getID(), contact.getID());
+		if(table[bucketIndex] == null) //Instanzio il bucket se null
+			table[bucketIndex] = new KBucket();
+		
+		table[bucketIndex].add(contact);
+	}
+
+	/**
+	 * Return the list of contacts (containing maximum sizeBucket) in the table
+	 * next to the input Id.
+	 * The buckets are visited in order of XOR distance from the id. Called b
+	 * the bucket of the id, its contacts are the closest ones; then come the
+	 * buckets i < b where the distance (owner xor id) has bit i set (from
+	 * the highest), then those where it's not set (from the lowest) and last
+	 * the buckets i > b (from the lowest). Since the ranges of distances of
+	 * the buckets visited in this order don't overlap, the search stops as
+	 * soon as a whole bucket has been visited with k contacts already found.
+	 * The contacts are written in the buffer, no memory is allocated.
+	 * 
+	 * @param id Id of the contact to which the output contacts are to be close
+	 * @param buffer array (at least sizeBucket long) that receives the
+	 * contacts, ordered by distance from the id
+	 * @return number of contacts written in the buffer.
+	 */
+	@Override
+	public int getContacts(ID id, Contact[] buffer) {
+		ID me = owner.getID();
+		int bucketIndex = ID.log2Distance(me, id);
+		
+		int count = bucketIndex >= 0 ? visitBucket(bucketIndex, id, buffer, 0) : 0;
+		//Bit i of the distance (owner xor id) is the bit lengthTable-1-i of the ids
+		for(int i = bucketIndex - 1; i >= 0 && count < sizeBucket; i--)
+			if(me.getBit(lengthTable - 1 - i) != id.getBit(lengthTable - 1 - i))
+				count = visitBucket(i, id, buffer, count);
+		for(int i = 0; i < bucketIndex && count < sizeBucket; i++)
+			if(me.getBit(lengthTable - 1 - i) == id.getBit(lengthTable - 1 - i))
+				count = visitBucket(i, id, buffer, count);
+		for(int i = bucketIndex + 1; i < lengthTable && count < sizeBucket; i++)
+			count = visitBucket(i, id, buffer, count);
+		return count;
+	}
+
+	/**
+	 * Merges the contacts of the bucket into the buffer keeping only the
+	 * sizeBucket closest.
+	 * 
+	 * @param bucketIndex index of the bucket to visit
+	 * @param id Id of the contact to which the contacts are to be close
+	 * @param buffer closest contacts found so far, ordered
+	 * @param count number of contacts in the buffer
+	 * @return the new number of contacts in the buffer.
+	 */
+	private int visitBucket(int bucketIndex, ID id, Contact[] buffer, int count) {
+		if(table[bucketIndex] != null)
+			for(Contact c : table[bucketIndex].getContacts())
+				count = insertClosest(buffer, count, c, id);
+		return count;
+	}
+
+	@Override
+	protected KBucket getBucket(ID id) {
+		int bucketIndex = ID.log2Distance(owner.getID(), id);
+		return bucketIndex < 0 ? null : table[bucketIndex];
+	}
+
+	@Override
+	public boolean contains(Contact contact) {
+		if(contact == null)
+			return false;
+		if(contact.equals(owner.getContact()))
+			return true;
+		int bucketIndex = ID.log2Distance(owner.getID(), contact.getID());
+		if(table[bucketIndex] == null)
+			return false;
+		else 
+			return table[bucketIndex].contains(contact);
+	}
+	
+	@Override
+	public String toString() {
+		String str = "\n";
+		for(int i = 0; i < lengthTable; i++)
+			if(table[i] != null)
+				str += "\t"+i+"->"+table[i]+"\n";
+		return "RoutingTable [" + str + "]";
+	}
+	@Override
+	public String getCvsEdge() {
+		String str = "";
+		for (KBucket kBucket : table)
+			if(kBucket != null) 
+				for(Contact contact : kBucket.getContacts())
+					str += owner.getID()+";"+contact.getID()+"\n";
+		return str;
+	}
+	
+	@Override
+	public Contact getClosest() {
+		for(KBucket b : table)
+			if(b != null)
+				return Contact.sort(b.getContacts(), owner.getID())[0];
+		return null;
+	}
+
+	@Override
+	public int countBuckets() {
+		int count = 0;
+		for (KBucket kBucket : table)
+			if(kBucket != null) count++;
+		return count;
+	}
+
+	@Override
+	public int countContacts() {
+		int count = 0;
+		for (KBucket kBucket : table)
+			if(kBucket != null) count += kBucket.size();
+		return count;
+	}
+
+	@Override
+	public int countSlots() {
+		return table.length;
+	}
+
+	@Override
+	public LinkedList<ID> getRefreshIDs(long untouchedSince) {
+		LinkedList<ID> ids = new LinkedList<ID>();
+		for(int i = 0; i < lengthTable; i++)
+			if(table[i] != null && table[i].getLastUpdate() < untouchedSince) {
+				//Same first bits of the owner up to the bit i, which is different
+				int index = lengthTable - 1 - i;
+				ids.add(owner.getID().withBit(index, 1 - owner.getID().getBit(index)).randomSuffix(index + 1));
+			}
+		return ids;
+	}
+}
@@ -1,27 +1,86 @@
 package node;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import node.Contact.ID;
 import node.exception.SizeBucketsCanBeSetOnlyOneTimeException;
-import node.exception.contact.InvalidIPException;
-import node.exception.contact.InvalidPortException;
 import node.exception.contact.SizeIDCanBeSetOnlyOneTimeException;
-import virtual_net.CollisionException;
 import virtual_net.Internet;
+import virtual_net.TimingWheel;
 
 public class Node {
+	/**
+	 * Possible organizations of the routing table of the node.
+	 * FLAT one bucket for each bit of the ID preallocated in an array.
+	 * TREE buckets split dynamically as the paper describes.
+	 */
+	public static enum TableType { FLAT, TREE }
+
+	/**
+	 * Strategies of the lookup.
+	 * STANDARD asks the alfa closest contacts not yet asked.
+	 * DISJOINT (S/Kademlia) runs disjointPaths lookups that never ask the same
+	 * node, so a failed or malicious node can spoil only one of them.
+	 * PROXIMITY asks, among the k closest contacts not yet asked, the alfa with
+	 * the lowest RTT measured (kept in the routing table with the contacts).
+	 */
+	public static enum LookupMode { STANDARD, DISJOINT, PROXIMITY }
+
+	/**
+	 * Outcome of a lookup: the closest nodes found, the number of rounds of
+	 * requests (hops), the virtual latency (ms) given by the RTT of the
+	 * slowest request of each round and the number of FIND_NODE sent.
+	 */
+	public static class LookupResult {
+		private Contact[] closest;
+		private int hops = 0;
+		private long latency = 0;
+		private int messages = 0;
+
+		public Contact[] getClosest() {
+			return closest;
+		}
+
+		public int getHops() {
+			return hops;
+		}
+
+		public long getLatency() {
+			return latency;
+		}
+
+		public int getMessages() {
+			return messages;
+		}
+	}
+
 	private static int alfa = 3;
+	// Number of paths of the DISJOINT lookups.
+	private static int disjointPaths = 3;
+	// Time (ms) after which a bucket not updated must be refreshed.
+	private static long refreshInterval = 3600000;
 
 	private Internet connection;
 	private Contact me;
 	private RoutingTable table;
+	// Executor of all the work of the node on its routing table.
+	private Executor mailbox;
+	// Timer of the periodic maintenance, null until it's started.
+	private volatile TimingWheel maintenance;
+	// Reused by FIND_NODE to read the table, only touched on the mailbox.
+	private Contact[] findBuffer = new Contact[RoutingTable.getSizeBucket()];
 	
 	
 	public static void setSizeID(int sizeID) throws SizeIDCanBeSetOnlyOneTimeException {
@@ -32,6 +91,22 @@ public class Node {
 	public static void setSizeBuckets(int sizeBucket) throws SizeBucketsCanBeSetOnlyOneTimeException {
 		RoutingTable.setSizeBucket(sizeBucket);
 	}
+
+	public static int getSizeID() {
+		return RoutingTable.getLengthTable();
+	}
+
+	public static int getSizeBuckets() {
+		return RoutingTable.getSizeBucket();
+	}
+
+	public static void setRefreshInterval(long refreshInterval) {
+		Node.refreshInterval = refreshInterval;
+	}
+
+	public static void setDisjointPaths(int disjointPaths) {
+		Node.disjointPaths = disjointPaths;
+	}
 	
 	public ID getID() {
 		return me.getID();
@@ -40,25 +115,33 @@ public class Node {
 	public Contact getContact() {
 		return me;
 	}
+
+	public Executor getMailbox() {
+		return mailbox;
+	}
 	
 	public Node(Internet connection)  {
+		this(connection, TableType.FLAT);
+	}
+
+	/**
+	 * @param connection network the node connects to
+	 * @param tableType organization of the routing table of the node
+	 */
+	public Node(Internet connection, TableType tableType)  {
 		super();
 		
 		this.connection = connection;
+		this.mailbox = connection.newMailbox();
+		//The table must exist before the node is reachable in the network
+		table = RoutingTable.create(this, tableType);
 
-		Contact myBoot = null;
-		do {
-			try {
-				this.me = new Contact(connection.myIP(), (int) (Math.random()*64331) + 1024);
-				myBoot = connection.connect(this);
-			} catch (CollisionException e) {
-				this.me = null;
-			} catch (InvalidPortException | InvalidIPException e) {e.printStackTrace();}
-		} while(this.me == null);
+		//The IDs given by the network are unique
+		this.me = connection.allocateContact();
+		Contact boot = connection.connect(this);
 		
-		table = new RoutingTable(this);
-		if (myBoot != null) {
-			table.addContact(myBoot);
+		if (boot != null) {
+			onMailbox(() -> table.addContact(boot));
 			join();
 		}
 	}
@@ -69,100 +152,229 @@ public class Node {
 	 * manage, then you have to look for a random ID away from you.
 	 */
 	private void join() {
-		lookup(me.getID());
-		lookup(table.getClosest().getID().getNewFarID());
+		findNode(me.getID(), LookupMode.STANDARD);
+		findNode(onMailbox(() -> table.getClosest()).getID().getNewFarID(), LookupMode.STANDARD);
 	}
 
-	boolean isAlive(Contact recipient) {
-		return connection.sendPING(this, recipient);
-	}	
+	/**
+	 * Starts the periodic maintenance of the routing table on the timer: every
+	 * refreshInterval the buckets not updated in the last refreshInterval are
+	 * refreshed by looking up a random ID in their range.
+	 * The first check is at a random time to spread the work of the nodes.
+	 * 
+	 * @param wheel timer shared by the nodes
+	 */
+	public void startMaintenance(TimingWheel wheel) {
+		this.maintenance = wheel;
+		wheel.schedule(this::refresh, (long) (Math.random()*refreshInterval));
+	}
+
+	private void refresh() {
+		long untouchedSince = now() - refreshInterval;
+		for(ID id : onMailbox(() -> table.getRefreshIDs(untouchedSince)))
+			findNode(id, LookupMode.STANDARD);
+		maintenance.schedule(this::refresh, refreshInterval);
+	}
+
+	/**
+	 * @return current time of the maintenance timer, 0 if it's not started.
+	 */
+	long now() {
+		TimingWheel wheel = maintenance;
+		return wheel == null ? 0 : wheel.now();
+	}
+
+	/**
+	 * Pings the recipient without waiting for the answer, the callback will be
+	 * executed on the mailbox of the node once the answer arrives (immediately
+	 * if the network executes the RPCs on the caller's stack).
+	 * 
+	 * @param recipient contact to check
+	 * @param callback receives true if the recipient answered
+	 */
+	void isAlive(Contact recipient, Consumer<Boolean> callback) {
+		connection.sendPING(this, recipient).thenAcceptAsync(alive -> {
+			if(alive)
+				measureRTT(recipient);
+			callback.accept(alive);
+		}, mailbox);
+	}
+
+	/**
+	 * Records in the table the RTT of the link with a contact that has just
+	 * answered or sent a request, to be executed on the mailbox.
+	 * 
+	 * @param contact contact at the other end of the link
+	 */
+	private void measureRTT(Contact contact) {
+		int rtt = connection.getRTT(me, contact);
+		if(rtt > 0)
+			table.setRTT(contact, rtt);
+	}
+
+	/**
+	 * Executes the task on the mailbox of the node and waits for it. Used by
+	 * the work the node starts by itself (join and lookup) to access the
+	 * routing table, the RPC handlers are already executed on the mailbox.
+	 * 
+	 * @param task work on the routing table
+	 */
+	private void onMailbox(Runnable task) {
+		CompletableFuture.runAsync(task, mailbox).join();
+	}
+
+	private <T> T onMailbox(Supplier<T> task) {
+		return CompletableFuture.supplyAsync(task, mailbox).join();
+	}
 	
 	/**
+	 * State of one of the paths of a lookup: its shortlist, the requests of the
+	 * current round and the costs so far (closest is filled at the end).
+	 */
+	private static class LookupPath {
+		private TreeSet<Contact> shortlist;
+		private List<Contact> round;
+		private List<CompletableFuture<Contact[]>> answers;
+		private LookupResult cost = new LookupResult();
+
+		public LookupPath(TreeSet<Contact> shortlist) {
+			super();
+			this.shortlist = shortlist;
+		}
+	}
+	
+	/**
+	 * Performs the lookup of the id with the requested strategy.
 	 * Sends the FIND_NODE request to a series of parallel "alpha" nodes that
 	 * should be close to the node that i looking for (taken from my table) to 
 	 * receive their lists of nodes close to the requested id.
 	 * Once I receive the lists merge them by ordering them by distance, even
-	 * with my previous one, to request again FIND_NODE to new closest node 
-	 * (the current list.)
-
+	 * with my previous one, to request again FIND_NODE to the new closest
+	 * nodes, until all the k closest known have been asked.
+	 * With DISJOINT the initial contacts are divided among disjointPaths
+	 * lookups that never ask the same node, the result is the union of them.
+	 * The paths advance together one round at a time, so they compete for
+	 * the nodes close to the id as concurrent lookups would.
+	 *
 	 * @param id ID on which to perform the lookup
-	 * @return 
+	 * @param mode strategy used to choose the nodes to ask
+	 * @return the k closest nodes found, with hops, latency and messages spent
 	 */
-	private Contact[] lookup(ID id) {
-		HashSet<Contact> alreadyContacted = new HashSet<Contact>();
+	public LookupResult findNode(ID id, LookupMode mode) {
+		Contact[] initial = onMailbox(() -> table.getContacts(id));
+		Comparator<Contact> byDistance = (a, b) -> Contact.compareFormID(a, b, id);
 		
-		LinkedHashSet<Contact> kClosest = new LinkedHashSet<Contact>(Arrays.asList(table.getContacts(id)));
-		LinkedHashSet<Contact> toContact = new LinkedHashSet<Contact>(kClosest);
+		int count = mode == LookupMode.DISJOINT ? disjointPaths : 1;
+		List<LookupPath> paths = new ArrayList<LookupPath>();
+		for(int p = 0; p < count; p++) {
+			TreeSet<Contact> shortlist = new TreeSet<Contact>(byDistance);
+			for(int i = p; i < initial.length; i += count)
+				shortlist.add(initial[i]);
+			paths.add(new LookupPath(shortlist));
+		}
 		
-		HashSet<Contact> toMerge = new HashSet<Contact>();
-		do {
-			//I run the FIND_NODE on the first alpha nodes in parallel  
-			toMerge = toContact.stream().limit(alfa)
-			.map(x -> {
-				alreadyContacted.add(x); 
-				return connection.sendFIND_NODE(this, id, x);
-				})
-			.reduce(toMerge, (x,y) -> { x.addAll(Arrays.asList(y)); return x;}, (x,y) -> {x.addAll(y); return x;});
-			
-			//I remove the Node that i've already tied. 
-			toContact.removeAll(alreadyContacted);
-			toMerge.remove(me);
-			toMerge.removeAll(toContact);
-			toMerge.removeAll(alreadyContacted);
-			
-			//Adding the new contacts that i've discovered
-			toMerge.forEach(x -> table.addContact(x));
-			
-			//Updating the list of nodes to be contacted
-			toContact = merge(toContact, toMerge, id);
-		} while(endIteration(kClosest, toContact, id));
+		//Nodes already asked and those that didn't answer, by any path
+		HashSet<Contact> asked = new HashSet<Contact>();
+		HashSet<Contact> failed = new HashSet<Contact>();
+		List<LookupPath> active = new ArrayList<LookupPath>(paths);
+		while(!active.isEmpty()) {
+			//Each path chooses its nodes in turn, then all the requests travel together
+			for(LookupPath path : active)
+				sendRound(id, path, asked, mode == LookupMode.PROXIMITY);
+			active.removeIf(path -> path.round.isEmpty());
+			for(LookupPath path : active)
+				mergeRound(id, path, asked, failed);
+			//A node that didn't answer can't be among the closest of any path
+			for(LookupPath path : paths)
+				path.shortlist.removeIf(failed::contains);
+		}
 		
-		return kClosest.toArray(new Contact[0]);
+		//The paths proceed in parallel: the slowest one decides
+		TreeSet<Contact> closest = new TreeSet<Contact>(byDistance);
+		LookupResult result = new LookupResult();
+		for(LookupPath path : paths) {
+			result.hops = Math.max(result.hops, path.cost.hops);
+			result.latency = Math.max(result.latency, path.cost.latency);
+			result.messages += path.cost.messages;
+			closest.addAll(path.shortlist);
+		}
+		while(closest.size() > RoutingTable.getSizeBucket())
+			closest.pollLast();
+		result.closest = closest.toArray(new Contact[0]);
+		return result;
 	}
+	
 	/**
-	 * Checking if the lookup process is over.
-	 * Is over when checking the new contacts i discovered that, with the
-	 * current iteration (toContact set), there are no closer contacts.
-	 *  	
-	 * @param kClosest List of the closest known contacts so far
-	 * @param toContact	list of new contacts
-	 * @param id id compared to those contacts must be close to each other
-	 * @return True if the kClostest list has been modified so if there were
-	 *	closer contacts; False otherwise.
+	 * Starts a round (hop) of the path: asks in parallel alfa contacts among
+	 * the k closest in its shortlist not yet asked by any path.
+	 * 
+	 * @param id ID on which to perform the lookup
+	 * @param path path of the lookup, its round is empty if it's finished
+	 * @param asked nodes already asked (shared among the disjoint paths)
+	 * @param proximity true to prefer the contacts with the lowest RTT
 	 */
-	private boolean endIteration(Set<Contact> kClosest, Set<Contact> toContact, ID id) {
-		//If the list of nodes to contact is empty I have concluded
-		if(toContact.size() == 0) return false;
-
-		if(kClosest.containsAll(toContact)) return false;
-		kClosest = merge(kClosest, toContact, id);
+	private void sendRound(ID id, LookupPath path, Set<Contact> asked, boolean proximity) {
+		List<Contact> round = path.shortlist.stream().limit(RoutingTable.getSizeBucket())
+				.filter(x -> !asked.contains(x))
+				.collect(Collectors.toList());
+		//Stable sort, same RTT keeps the order of distance
+		if(proximity)
+			onMailbox(() -> round.sort(Comparator.comparingInt(x -> table.getRTT(x))));
+		path.round = round.subList(0, Math.min(alfa, round.size()));
 		
-		return true;
+		//I run the FIND_NODE on the alpha nodes in parallel
+		path.answers = path.round.stream()
+		.map(x -> {
+			asked.add(x); 
+			return connection.sendFIND_NODE(this, id, x);
+			})
+		.collect(Collectors.toList());
 	}
 	
 	/**
-	 * Combine the two sets of contacts and create a third one sorted according
-	 * to the input id, the resulting set will be as large as a routing table bucket.
-	 *
-	 * @param set1 first set
-	 * @param set2 second set
-	 * @param id reference id for sorting
-	 * @return a set ordered according to the id.
-	 */
-	private static LinkedHashSet<Contact> merge(Set<Contact> set1, Set<Contact> set2, ID id) {
-		//Merging the two into a linked list
-		LinkedList<Contact> result = new LinkedList<Contact>(set1);
-		result.addAll(set2);
-		//Order the elements of the two lists according to the distance between the contact and the id
-		Collections.sort(result, new Comparator<Contact>() {
-		    @Override
-			public int compare(Contact a, Contact b) {
-		    	return ID.compare(ID.xorD(a.getID(), id), ID.xorD(b.getID(), id));
+	 * Completes the round of the path: merges the answers in its shortlist
+	 * (keeping the k closest) and adds the new contacts to the table.
+	 * 
+	 * @param id ID on which to perform the lookup
+	 * @param path path of the lookup
+	 * @param asked nodes already asked (shared among the disjoint paths)
+	 * @param failed receives the nodes that didn't answer
+	 */
+	private void mergeRound(ID id, LookupPath path, Set<Contact> asked, Set<Contact> failed) {
+		HashSet<Contact> toMerge = new HashSet<Contact>();
+		HashMap<Contact, Integer> measured = new HashMap<Contact, Integer>();
+		int roundLatency = 0;
+		for(int i = 0; i < path.round.size(); i++) {
+			Contact recipient = path.round.get(i);
+			Contact[] contacts = path.answers.get(i).join();
+			path.cost.messages++;
+			if(contacts == null) {
+				failed.add(recipient);
+				roundLatency = Math.max(roundLatency, connection.getTimeout());
+				continue;
 			}
+			int rtt = connection.getRTT(me, recipient);
+			if(rtt > 0)
+				measured.put(recipient, rtt);
+			roundLatency = Math.max(roundLatency, rtt);
+			for(Contact c : contacts)
+				if(!c.equals(me) && !asked.contains(c))
+					toMerge.add(c);
+		}
+		path.cost.hops++;
+		path.cost.latency += roundLatency;
+		
+		//Adding the new contacts that i've discovered, the RTTs are kept
+		//only for the contacts in the table
+		onMailbox(() -> {
+			toMerge.forEach(x -> table.addContact(x));
+			measured.forEach((x, rtt) -> table.setRTT(x, rtt));
 		});
-		//just take the first k elements
-		result.removeIf(x -> result.indexOf(x) > (RoutingTable.getSizeBucket()-1));
-		return new LinkedHashSet<Contact>(result);
+		
+		//Updating the list of nodes to be contacted
+		path.shortlist.addAll(toMerge);
+		while(path.shortlist.size() > RoutingTable.getSizeBucket())
+			path.shortlist.pollLast();
 	}
 	
 	/**
@@ -173,8 +385,10 @@ public class Node {
 	 * @return list of k contacts close to the id
 	 */
 	public Contact[] FIND_NODE(Contact sender, ID id) {
-		Contact[] res = table.getContacts(id);
+		//The only allocation is the answer, which passes to the sender
+		Contact[] res = Arrays.copyOf(findBuffer, table.getContacts(id, findBuffer));
 		table.addContact(sender);
+		measureRTT(sender);
 		return res;
 	}
 	/**
@@ -185,6 +399,7 @@ public class Node {
 	 */
 	public boolean PING(Contact sender) {
 		table.addContact(sender);
+		measureRTT(sender);
 		return true;
 	}
 	
@@ -201,4 +416,27 @@ public class Node {
 	public String getCvsEdge() {
 		return table.getCvsEdge();
 	}
+
+	/**
+	 * Returns the contacts that the node knows closest to the id, without
+	 * contacting anyone (useful to evaluate the quality of the routing table).
+	 *
+	 * @param id id that the contacts must be close
+	 * @return list of k contacts close to the id
+	 */
+	public Contact[] getKnownContacts(ID id) {
+		return table.getContacts(id);
+	}
+
+	public int getBucketCount() {
+		return table.countBuckets();
+	}
+
+	public int getContactCount() {
+		return table.countContacts();
+	}
+
+	public int getTableSlotCount() {
+		return table.countSlots();
+	}
 }
@@ -1,6 +1,9 @@
 package node;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 
 import node.Contact.ID;
 import node.exception.CantAddContactException;
@@ -10,23 +13,35 @@ import node.exception.contact.SizeIDCanBeSetOnlyOneTimeException;
 /**
  * Table containing all the contacts that are known to the Node owner of the
  * teballa.
+ * The way the buckets are organized is left to the implementations.
  *
+ * @see FlatRoutingTable
+ * @see TreeRoutingTable
  * @see Contact
  * @see Node
  */
-class RoutingTable {
+abstract class RoutingTable {
 
-	private class KBucket {
+	protected class KBucket {
 		private LinkedHashSet<Contact> bucket;
+		// Array of the contacts served to the readers, null after a change.
+		private Contact[] snapshot;
+		// Most recently added contact, the last of the bucket.
+		private Contact newest;
+		// Last time (of the owner's clock) a contact was added or updated.
+		private long lastUpdate;
+		// RTT (ms) measured with the contacts, created at the first one.
+		private HashMap<Contact, Integer> rtt;
 
 		/**
 		 * [KBucket description]
-		 * 
+		 *
 		 * @param size bucket size.
 		 */
 		public KBucket() {
 			super();
 			bucket = new LinkedHashSet<Contact>();
+			lastUpdate = owner.now();
 		}
 
 		/**
@@ -38,41 +53,113 @@ class RoutingTable {
 		 * @param contact Object of the contact to be inserted in the bucket
 		 */
 		public void add(Contact contact) {
+			lastUpdate = owner.now();
+			//Already the last one, the order doesn't change
+			if(contact.equals(newest))
+				return;
 			if(bucket.contains(contact)) {
 				bucket.remove(contact);
-				bucket.add(contact);
-			} else if(bucket.size()+1 < sizeBucket)
-				bucket.add(contact);
+				append(contact);
+			} else if(!isFull())
+				append(contact);
 			else {
 				Contact last = bucket.iterator().next();
-				bucket.remove(last);
-				if(owner.isAlive(last))
-					bucket.add(last);
-				else
-					bucket.add(contact);
+				owner.isAlive(last, alive -> {
+					//The bucket may have changed while waiting for the answer
+					if(!bucket.remove(last))
+						return;
+					snapshot = null;
+					if(last.equals(newest))
+						newest = null;
+					if(alive)
+						append(last);
+					else {
+						if(rtt != null) rtt.remove(last);
+						if(!isFull())
+							append(contact);
+					}
+				});
 			}
 		}
-		
+
+		/**
+		 * Puts the contact at the end of the bucket (most recent).
+		 */
+		private void append(Contact contact) {
+			bucket.add(contact);
+			newest = contact;
+			snapshot = null;
+		}
+
+		/**
+		 * Check if a new contact would force the bucket to evict (or keep)
+		 * its oldest contact.
+		 *
+		 * @return true if there is no room for new contacts; false otherwise
+		 */
+		public boolean isFull() {
+			return bucket.size()+1 >= sizeBucket;
+		}
+
 		/**
 		 * Returns the entire list of contacts in the bucket.
  		 * The list is sorted by the last to most recently contacted contact.
-		 * 
+		 * The array is shared until the bucket changes: it must not be modified.
+		 *
 		 * @return lost of contcts.
 		 */
 		public Contact[] getContacts() {
-			return bucket.toArray(new Contact[0]);
+			if(snapshot == null)
+				snapshot = bucket.toArray(new Contact[0]);
+			return snapshot;
 		}
 
 		/**
 		 * Check if there is the contact in the bucket.
-		 * 
+		 *
 		 * @param contact Contact to check
 		 * @return true if it's in the bucket; false otherwise
 		 */
 		public boolean contains(Contact contact) {
 			return bucket.contains(contact);
 		}
-		
+
+		public int size() {
+			return bucket.size();
+		}
+
+		public long getLastUpdate() {
+			return lastUpdate;
+		}
+
+		/**
+		 * Records the RTT measured with a contact of the bucket, it's
+		 * forgotten when the contact leaves the bucket.
+		 *
+		 * @param contact contact of the bucket
+		 * @param ms RTT (ms)
+		 */
+		public void setRTT(Contact contact, int ms) {
+			if(!bucket.contains(contact)) return;
+			if(rtt == null) rtt = new HashMap<Contact, Integer>();
+			rtt.put(contact, ms);
+		}
+
+		/**
+		 * @return RTT (ms) measured with the contact, UNKNOWN_RTT if never.
+		 */
+		public int getRTT(Contact contact) {
+			Integer ms = rtt == null ? null : rtt.get(contact);
+			return ms == null ? UNKNOWN_RTT : ms;
+		}
+
+		public void clear() {
+			bucket.clear();
+			snapshot = null;
+			newest = null;
+			rtt = null;
+		}
+
 		@Override
 		public String toString() {
 			String str = "";
@@ -81,29 +168,30 @@ class RoutingTable {
 		}
 	}
 
+	// RTT of the contacts never measured, after all the known ones.
+	public static final int UNKNOWN_RTT = Integer.MAX_VALUE;
+
 	/**
 	 * Table length i.e. the number of buckets contained in the routing table.
  	 * It is also the length (number of bits) identifying the nodes.
 	 */
-	private static int lengthTable = -1;
+	protected static int lengthTable = -1;
 	// Maximum number of contacts each bucket can contain.
-	private static int sizeBucket = 20; // default Value.
+	protected static int sizeBucket = 20; // default Value.
 	// Node owner of the list.
-	private Node owner;
-	// list of buckets on the rooting table
-	private KBucket[] table;
+	protected Node owner;
 
 	public static void setSizeBucket(int sizeBucket) throws SizeBucketsCanBeSetOnlyOneTimeException {
 		if(RoutingTable.sizeBucket == 20)
 			RoutingTable.sizeBucket = sizeBucket;
 		else if (sizeBucket != RoutingTable.sizeBucket)
 			throw new SizeBucketsCanBeSetOnlyOneTimeException();
-		
-	}	
+
+	}
 	public static int getSizeBucket() {
 		return sizeBucket;
 	}
-	
+
 	/**
 	 *
 	 * @param lengthTable number of buckets that will be contained in the tebella
@@ -119,126 +207,142 @@ class RoutingTable {
 		return lengthTable;
 	}
 
+	/**
+	 * Create the routing table of the requested type.
+	 *
+	 * @param owner Node owner of the routing table.
+	 * @param type how the buckets have to be organized
+	 * @return the new (empty) routing table
+	 */
+	public static RoutingTable create(Node owner, Node.TableType type) {
+		switch(type) {
+			case TREE:
+				return new TreeRoutingTable(owner);
+			default:
+				return new FlatRoutingTable(owner);
+		}
+	}
+
 	/**
 	 * [RoutingTable description]
-	 * 
+	 *
 	 * @param owner	Node owner of the routing table.
 	 */
-	public RoutingTable(Node owner) {
+	protected RoutingTable(Node owner) {
 		super();
 		this.owner = owner;
-		table = new KBucket[lengthTable];
 	}
 
 	/**
-	 * Aggiunge il conttatto specificato all'interno della tabela di routing.
-	 * Il contatto viene inserito all'interno del bucket corrispondente al
-	 * numero di bit in comune tra l'ID del nodo che voglio aggiungere e il
-	 * mio ID(owner).
+	 * Adds the specified contact to the routing table.
 	 *
 	 * @param contact Contact Information
 	 * @throws CantAddContactException You cannot enter the contact if it is
 	 * null or it's the owner.
 	 */
-	public void addContact(Contact contact) throws CantAddContactException {
-		if(contact == null)
-			throw new CantAddContactException("Can't add Null contact");
-		if(owner.getContact().equals(contact)) return;
-
-		int bucketIndex = bucketIndexFromDistance(ID.xorD(owner.getID(), contact.getID()));
-		if(table[bucketIndex] == null) //Instanzio il bucket se null
-			table[bucketIndex] = new KBucket();
-		
-		table[bucketIndex].add(contact);
-	}
+	public abstract void addContact(Contact contact) throws CantAddContactException;
 
 	/**
 	 * Return the list of contacts (containing maximum sizeBucket) in the table
 	 * next to the input Id.
-	 * 
+	 *
 	 * @param id Id of the contact to which the output contacts are to be close
 	 * @return List of contacts I know near the given id.
 	 */
 	public Contact[] getContacts(ID id) {
-		int bucketIndex = bucketIndexFromDistance(ID.xorD(owner.getID(), id));
-		LinkedHashSet<Contact> result = new LinkedHashSet<Contact>();
-		
-		int offset = 0;
-		int tempBucketIndex, beforeTempBucketIndex = -1;
-		do {
-			tempBucketIndex = (bucketIndex + offset) % lengthTable;
-			if(tempBucketIndex < 0)
-				tempBucketIndex += lengthTable;
-			
-			//Add all the contacts in the bucket (max sizeBucket)
-			if(table[tempBucketIndex] != null) {
-				Contact[] temp = table[tempBucketIndex].getContacts();
-				for(Contact c : Contact.sort(temp, id))
-					if(!result.contains(c)) {
-						result.add(c);
-						if(result.size() >= sizeBucket) break;
-					}
-			}
-			
-			offset *= -1;
-			if(offset <= 0)
-				offset--;
-			
-			//Stop if I've checked all the buckets.
-			if(beforeTempBucketIndex == tempBucketIndex) break;
-			else beforeTempBucketIndex = tempBucketIndex;
-		} while(result.size() < sizeBucket);
-				
-		return result.toArray(new Contact[0]);
+		Contact[] buffer = new Contact[sizeBucket];
+		return Arrays.copyOf(buffer, getContacts(id, buffer));
 	}
 
 	/**
-	 * Returns the bucket corresponding to the distance obtained between two id.
-	 * The calculation of the bucket is nothing more than the logarithm (lower
-	 * integer part) of the distance if it has been calculated with the
-	 * Contact.xorD().
+	 * Writes in the buffer the contacts (maximum sizeBucket) in the table next
+	 * to the input Id, ordered by distance, without allocating memory.
 	 *
-	 * @param distance Previously calculated distance between the owner ID and
-	 * the id you are referring to.
-	 * @return bucket index.
+	 * @param id Id of the contact to which the output contacts are to be close
+	 * @param buffer array (at least sizeBucket long) that receives the contacts
+	 * @return number of contacts written in the buffer.
 	 */
-	private static int bucketIndexFromDistance(ID distance) {
-		return distance.log2();
-	}
-	
-	public boolean contains(Contact contact) {
-		if(contact == null)
-			return false;
-		if(contact.equals(owner.getContact()))
-			return true;
-		int bucketIndex = bucketIndexFromDistance(ID.xorD(this.owner.getID(), contact.getID()));
-		if(table[bucketIndex] == null)
-			return false;
-		else 
-			return table[bucketIndex].contains(contact);
-	}
-	
-	@Override
-	public String toString() {
-		String str = "\n";
-		for(int i = 0; i < lengthTable; i++)
-			if(table[i] != null)
-				str += "\t"+i+"->"+table[i]+"\n";
-		return "RoutingTable [" + str + "]";
+	public abstract int getContacts(ID id, Contact[] buffer);
+
+	/**
+	 * Inserts the contact in the buffer, ordered by distance from the id,
+	 * if it's among the sizeBucket closest.
+	 *
+	 * @param buffer closest contacts found so far, ordered
+	 * @param count number of contacts in the buffer
+	 * @param contact contact to insert
+	 * @param id Id of the contact to which the contacts are to be close
+	 * @return the new number of contacts in the buffer.
+	 */
+	protected static int insertClosest(Contact[] buffer, int count, Contact contact, ID id) {
+		if(count == sizeBucket && ID.compareDistance(contact.getID(), buffer[count - 1].getID(), id) >= 0)
+			return count;
+		int i = count < sizeBucket ? count++ : count - 1;
+		for(; i > 0 && ID.compareDistance(contact.getID(), buffer[i - 1].getID(), id) < 0; i--)
+			buffer[i] = buffer[i - 1];
+		buffer[i] = contact;
+		return count;
 	}
-	public String getCvsEdge() {
-		String str = "";
-		for (KBucket kBucket : table)
-			if(kBucket != null) 
-				for(Contact contact : kBucket.getContacts())
-					str += owner.getID()+";"+contact.getID()+"\n";
-		return str;
+
+	/**
+	 * @param id id to check
+	 * @return the bucket whose range contains the id, null if there is none.
+	 */
+	protected abstract KBucket getBucket(ID id);
+
+	/**
+	 * Records the RTT measured with the contact if it's in the table.
+	 *
+	 * @param contact contact that answered
+	 * @param ms RTT (ms)
+	 */
+	public void setRTT(Contact contact, int ms) {
+		KBucket bucket = getBucket(contact.getID());
+		if(bucket != null)
+			bucket.setRTT(contact, ms);
 	}
-	
-	public Contact getClosest() {
-		for(KBucket b : table)
-			if(b != null)
-				return Contact.sort(b.getContacts(), owner.getID())[0];
-		return null;
+
+	/**
+	 * @param contact contact to check
+	 * @return RTT (ms) measured with the contact, UNKNOWN_RTT if it has never
+	 * been measured or the contact is not in the table.
+	 */
+	public int getRTT(Contact contact) {
+		KBucket bucket = getBucket(contact.getID());
+		return bucket == null ? UNKNOWN_RTT : bucket.getRTT(contact);
 	}
+
+	public abstract boolean contains(Contact contact);
+
+	public abstract String getCvsEdge();
+
+	public abstract Contact getClosest();
+
+	/**
+	 * @return number of buckets actually instantiated.
+	 */
+	public abstract int countBuckets();
+
+	/**
+	 * @return number of contacts stored in all the buckets.
+	 */
+	public abstract int countContacts();
+
+	/**
+	 * Number of references the table keeps to organize its buckets (array
+	 * cells or nodes of the tree), used as a measure of the memory occupied
+	 * by the structure regardless of the contacts.
+	 *
+	 * @return number of structural slots.
+	 */
+	public abstract int countSlots();
+
+	/**
+	 * Returns, for each bucket that has not been updated since the given
+	 * time, a random ID in its range: looking them up refreshes the bucket.
+	 *
+	 * @param untouchedSince time (of the owner's clock) of the last update
+	 * @return list of IDs to look up.
+	 */
+	public abstract LinkedList<ID> getRefreshIDs(long untouchedSince);
 }
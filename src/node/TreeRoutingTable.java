@@ -0,0 +1,251 @@
+package node;
+
+import java.util.LinkedList;
+
+import node.Contact.ID;
+import node.exception.CantAddContactException;
+
+/**
+ * Routing table organized as the binary tree described in the Kademlia paper.
+ * At the beginning the table is a single bucket that covers the whole ID
+ * space, when a bucket is full and a new contact arrives the bucket is split
+ * in two halves (according to the next bit of the IDs) only if its range
+ * contains the ID of the owner or if the new contact would be one of the k
+ * closest to the owner (relaxed splitting for unbalanced trees).
+ * In this way only the buckets that are really needed are instantiated.
+ *
+ * @see RoutingTable
+ */
+class TreeRoutingTable extends RoutingTable {
+
+	/**
+	 * Node of the tree. The leaves hold the bucket of the range identified by
+	 * the path from the root, the internal nodes only have the two children
+	 * selected by the bit in position depth.
+	 */
+	private class TreeNode {
+		private int depth;
+		private KBucket bucket;
+		private TreeNode[] children;
+
+		public TreeNode(int depth) {
+			super();
+			this.depth = depth;
+			this.bucket = new KBucket();
+		}
+
+		public boolean isLeaf() {
+			return bucket != null;
+		}
+
+		/**
+		 * Transforms the leaf into an internal node by moving its contacts
+		 * into the two new leaves (keeping the order of last contact).
+		 */
+		public void split() {
+			children = new TreeNode[] {new TreeNode(depth + 1), new TreeNode(depth + 1)};
+			for(Contact c : bucket.getContacts()) {
+				KBucket child = children[c.getID().getBit(depth)].bucket;
+				child.add(c);
+				if(bucket.getRTT(c) != UNKNOWN_RTT)
+					child.setRTT(c, bucket.getRTT(c));
+			}
+			//Pending answers to pings will find the old bucket empty
+			bucket.clear();
+			bucket = null;
+		}
+	}
+
+	private TreeNode root;
+
+	/**
+	 * [TreeRoutingTable description]
+	 *
+	 * @param owner	Node owner of the routing table.
+	 */
+	public TreeRoutingTable(Node owner) {
+		super(owner);
+		root = new TreeNode(0);
+	}
+
+	/**
+	 * Adds the specified contact to the bucket that covers its ID, splitting
+	 * the bucket first if it's full and it can be split.
+	 *
+	 * @param contact Contact Information
+	 * @throws CantAddContactException You cannot enter the contact if it is
+	 * null or it's the owner.
+	 */
+	@Override
+	public void addContact(Contact contact) throws CantAddContactException {
+		if(contact == null)
+			throw new CantAddContactException("Can't add Null contact");
+		if(owner.getContact().equals(contact)) return;
+
+		TreeNode leaf = findLeaf(contact.getID());
+		while(leaf.bucket.isFull() && !leaf.bucket.contains(contact) && canSplit(leaf, contact)) {
+			leaf.split();
+			leaf = leaf.children[contact.getID().getBit(leaf.depth)];
+		}
+		leaf.bucket.add(contact);
+	}
+
+	/**
+	 * Check if the leaf (which must contain the contact) can be split.
+	 * It's possible if the range of the leaf contains the owner ID or if the
+	 * contact is closer to the owner than the k-th closest known contact.
+	 *
+	 * @param leaf leaf in which the contact should go
+	 * @param contact contact to be added
+	 * @return true if the leaf can be split; false otherwise
+	 */
+	private boolean canSplit(TreeNode leaf, Contact contact) {
+		if(leaf.depth >= lengthTable)
+			return false;
+
+		boolean ownerInRange = true;
+		for(int i = 0; i < leaf.depth && ownerInRange; i++)
+			ownerInRange = owner.getID().getBit(i) == contact.getID().getBit(i);
+		if(ownerInRange)
+			return true;
+
+		Contact[] closest = getContacts(owner.getID());
+		if(closest.length < sizeBucket)
+			return true;
+		return Contact.compareFormID(contact, closest[closest.length - 1], owner.getID()) < 0;
+	}
+
+	@Override
+	protected KBucket getBucket(ID id) {
+		return findLeaf(id).bucket;
+	}
+
+	private TreeNode findLeaf(ID id) {
+		TreeNode node = root;
+		while(!node.isLeaf())
+			node = node.children[id.getBit(node.depth)];
+		return node;
+	}
+
+	/**
+	 * Return the list of contacts (containing maximum sizeBucket) in the table
+	 * next to the input Id.
+	 * The leaves are visited in order of XOR distance from the id (at each
+	 * node first the child with the same bit as the id) so the contacts of a
+	 * leaf are all closer than those of the following ones.
+	 *
+	 * The contacts are written in the buffer, no memory is allocated.
+	 *
+	 * @param id Id of the contact to which the output contacts are to be close
+	 * @param buffer array (at least sizeBucket long) that receives the
+	 * contacts, ordered by distance from the id
+	 * @return number of contacts written in the buffer.
+	 */
+	@Override
+	public int getContacts(ID id, Contact[] buffer) {
+		return collect(root, id, buffer, 0);
+	}
+
+	private int collect(TreeNode node, ID id, Contact[] buffer, int count) {
+		if(count >= sizeBucket) return count;
+		if(node.isLeaf()) {
+			for(Contact c : node.bucket.getContacts())
+				count = insertClosest(buffer, count, c, id);
+			return count;
+		}
+		int bit = id.getBit(node.depth);
+		count = collect(node.children[bit], id, buffer, count);
+		return collect(node.children[1 - bit], id, buffer, count);
+	}
+
+	/**
+	 * @return all the leaves of the tree from the left one.
+	 */
+	private LinkedList<TreeNode> getLeaves() {
+		LinkedList<TreeNode> leaves = new LinkedList<TreeNode>();
+		LinkedList<TreeNode> toVisit = new LinkedList<TreeNode>();
+		toVisit.push(root);
+		while(!toVisit.isEmpty()) {
+			TreeNode node = toVisit.pop();
+			if(node.isLeaf())
+				leaves.add(node);
+			else {
+				toVisit.push(node.children[1]);
+				toVisit.push(node.children[0]);
+			}
+		}
+		return leaves;
+	}
+
+	@Override
+	public boolean contains(Contact contact) {
+		if(contact == null)
+			return false;
+		if(contact.equals(owner.getContact()))
+			return true;
+		return findLeaf(contact.getID()).bucket.contains(contact);
+	}
+
+	@Override
+	public String toString() {
+		String str = "\n";
+		for(TreeNode leaf : getLeaves())
+			str += "\t"+leaf.depth+"->"+leaf.bucket+"\n";
+		return "TreeRoutingTable [" + str + "]";
+	}
+
+	@Override
+	public String getCvsEdge() {
+		String str = "";
+		for(TreeNode leaf : getLeaves())
+			for(Contact contact : leaf.bucket.getContacts())
+				str += owner.getID()+";"+contact.getID()+"\n";
+		return str;
+	}
+
+	@Override
+	public Contact getClosest() {
+		Contact[] closest = getContacts(owner.getID());
+		return closest.length == 0 ? null : closest[0];
+	}
+
+	@Override
+	public int countBuckets() {
+		return getLeaves().size();
+	}
+
+	@Override
+	public int countContacts() {
+		int count = 0;
+		for(TreeNode leaf : getLeaves())
+			count += leaf.bucket.size();
+		return count;
+	}
+
+	@Override
+	public int countSlots() {
+		// A full binary tree with l leaves has 2l - 1 nodes.
+		return getLeaves().size() * 2 - 1;
+	}
+
+	@Override
+	public LinkedList<ID> getRefreshIDs(long untouchedSince) {
+		LinkedList<ID> ids = new LinkedList<ID>();
+		collectRefreshIDs(root, owner.getID(), untouchedSince, ids);
+		return ids;
+	}
+
+	/**
+	 * @param node subtree to visit
+	 * @param prefix an ID with the first node.depth bits of the subtree range
+	 */
+	private void collectRefreshIDs(TreeNode node, ID prefix, long untouchedSince, LinkedList<ID> ids) {
+		if(node.isLeaf()) {
+			if(node.bucket.getLastUpdate() < untouchedSince)
+				ids.add(prefix.randomSuffix(node.depth));
+			return;
+		}
+		collectRefreshIDs(node.children[0], prefix.withBit(node.depth, 0), untouchedSince, ids);
+		collectRefreshIDs(node.children[1], prefix.withBit(node.depth, 1), untouchedSince, ids);
+	}
+}
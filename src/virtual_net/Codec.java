@@ -0,0 +1,64 @@
+package virtual_net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import node.Contact;
+import node.Contact.ID;
+
+/**
+ * Binary encoding of IDs and contacts exchanged between the processes of a
+ * sharded simulation.
+ */
+class Codec {
+	static final byte PING = 0;
+	static final byte FIND_NODE = 1;
+
+	static void writeID(DataOutputStream out, ID id) throws IOException {
+		byte[] bytes = id.getBytes();
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	static ID readID(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readShort()];
+		in.readFully(bytes);
+		return new ID(bytes);
+	}
+
+	static void writeContact(DataOutputStream out, Contact contact) throws IOException {
+		out.write(contact.getIP());
+		out.writeShort(contact.getPort());
+		writeID(out, contact.getID());
+	}
+
+	static Contact readContact(DataInputStream in) throws IOException {
+		byte[] ip = new byte[4];
+		in.readFully(ip);
+		short port = in.readShort();
+		return new Contact(ip, port, readID(in));
+	}
+
+	/**
+	 * Writes the array of contacts, null is encoded with length -1.
+	 */
+	static void writeContacts(DataOutputStream out, Contact[] contacts) throws IOException {
+		if(contacts == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(contacts.length);
+		for(Contact c : contacts)
+			writeContact(out, c);
+	}
+
+	static Contact[] readContacts(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) return null;
+		Contact[] contacts = new Contact[length];
+		for(int i = 0; i < length; i++)
+			contacts[i] = readContact(in);
+		return contacts;
+	}
+}
@@ -1,3 +0,0 @@
-package virtual_net;
-@SuppressWarnings("serial")
-public class CollisionException extends Exception {}
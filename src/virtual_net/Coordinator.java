@@ -0,0 +1,116 @@
+package virtual_net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+
+import node.Contact;
+import node.Node;
+
+/**
+ * Runs a simulation split among several local processes (shards) so that
+ * the size of the network is not limited by the heap of a single JVM.
+ * Each shard hosts the nodes whose IDs start with its index and the RPCs
+ * between shards travel on the loopback. The coordinator starts the shards,
+ * tells them the ports of the others, gives them the seed node for the
+ * bootstrap and collects the edges of the network at the end.
+ *
+ * @see Shard
+ */
+public class Coordinator {
+
+	/**
+	 * @param shards number of processes, must be a power of 2
+	 * @param m number of bit Key
+	 * @param n number of Node in the whole network
+	 * @param k number of node in a single bucket
+	 * @param type organization of the routing tables
+	 * @param threads threads of each shard
+	 * @param filename name of the file with the edges (as Internet.saveNetwork)
+	 */
+	public static void run(int shards, int m, int n, int k, Node.TableType type, int threads, String filename) throws IOException, InterruptedException {
+		if(Integer.bitCount(shards) != 1 || Integer.numberOfTrailingZeros(shards) > m)
+			throw new IllegalArgumentException("The number of shards must be a power of 2 not greater than 2^m");
+		//Each shard has only the IDs with its prefix
+		int idBits = m - Integer.numberOfTrailingZeros(shards);
+		if(idBits < 63 && (n + shards - 1) / shards > 1L << idBits)
+			throw new IllegalArgumentException("There are only 2^"+idBits+" IDs in each shard for "+n+" nodes");
+
+		ServerSocket server = new ServerSocket(0, shards, InetAddress.getLoopbackAddress());
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process[] processes = new Process[shards];
+		for(int i = 0; i < shards; i++)
+			processes[i] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					Shard.class.getName(), ""+server.getLocalPort(), ""+i, ""+m,
+					""+(n / shards + (i < n % shards ? 1 : 0)), ""+k, type.name(), ""+threads)
+					.inheritIO().start();
+
+		//Registration of the shards
+		Socket[] sockets = new Socket[shards];
+		DataInputStream[] in = new DataInputStream[shards];
+		DataOutputStream[] out = new DataOutputStream[shards];
+		int[] ports = new int[shards];
+		for(int i = 0; i < shards; i++) {
+			Socket socket = server.accept();
+			DataInputStream sIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			int index = sIn.readInt();
+			ports[index] = sIn.readInt();
+			sockets[index] = socket;
+			in[index] = sIn;
+			out[index] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		server.close();
+		for(int i = 0; i < shards; i++) {
+			out[i].writeInt(shards);
+			for(int port : ports)
+				out[i].writeInt(port);
+			out[i].flush();
+		}
+
+		//The first node of the network is the bootstrap of the empty shards
+		out[0].writeByte(Shard.SEED);
+		out[0].flush();
+		Contact seed = Codec.readContact(in[0]);
+
+		for(int i = 0; i < shards; i++) {
+			out[i].writeByte(Shard.BUILD);
+			Codec.writeContact(out[i], seed);
+			out[i].flush();
+		}
+		for(int i = 0; i < shards; i++)
+			System.out.println("Shard "+i+": "+in[i].readLong()+"millisec");
+
+		//Collection of the edges
+		int collisions = 0;
+		File temp = new File(filename+".part");
+		try(OutputStream file = new BufferedOutputStream(new FileOutputStream(temp))) {
+			for(int i = 0; i < shards; i++) {
+				out[i].writeByte(Shard.SAVE);
+				out[i].flush();
+				for(int length = in[i].readInt(); length >= 0; length = in[i].readInt()) {
+					byte[] edges = new byte[length];
+					in[i].readFully(edges);
+					file.write(edges);
+				}
+				collisions += in[i].readInt();
+			}
+		}
+		temp.renameTo(new File("C-"+collisions+"_"+filename));
+
+		for(int i = 0; i < shards; i++) {
+			out[i].writeByte(Shard.EXIT);
+			out[i].flush();
+			processes[i].waitFor();
+			sockets[i].close();
+		}
+	}
+}
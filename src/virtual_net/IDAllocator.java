@@ -0,0 +1,156 @@
+package virtual_net;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import node.Contact;
+import node.Contact.ID;
+import node.exception.contact.InvalidIPException;
+import node.exception.contact.InvalidPortException;
+
+/**
+ * Gives to the new nodes contacts (IP, port) whose IDs are all different.
+ * The contacts are generated in small batches (one for each processor)
+ * hashing random addresses in parallel and every ID is claimed in a
+ * concurrent set of the used ones: a bitmap of the whole space when it's
+ * small, a hash set otherwise. When the free IDs are too few to be found by
+ * chance an IDSpaceExhaustedException is thrown.
+ */
+class IDAllocator {
+	/**
+	 * Contact ready to be given with the number of addresses whose ID was
+	 * already used that were tried before finding it.
+	 */
+	private static class Allocation {
+		private Contact contact;
+		private int collisions;
+
+		public Allocation(Contact contact, int collisions) {
+			super();
+			this.contact = contact;
+			this.collisions = collisions;
+		}
+	}
+
+	// Up to this size (bit) the used IDs are kept in a bitmap of the space.
+	private static final int MAX_BITMAP_SIZE_ID = 26;
+	// Contacts generated in advance, few so that the space fills up as the
+	// nodes join and the collisions are those the nodes would meet.
+	private static final int BATCH = Runtime.getRuntime().availableProcessors();
+	// Random addresses tried for each ID of the batch before giving up.
+	private static final int MAX_ATTEMPTS = 1000;
+
+	private ConcurrentLinkedQueue<Allocation> ready;
+	private AtomicLongArray bitmap;
+	private Set<ID> used;
+	// IDs that can be assigned (-1 if too many to matter).
+	private long capacity;
+	private AtomicLong allocated;
+	// Addresses whose ID was already used, of the contacts given.
+	private AtomicInteger collisions;
+	// Only the accepted IDs are assigned (e.g. those of a shard).
+	private Predicate<ID> accept;
+
+	/**
+	 * @param sizeID number of bits of the IDs
+	 * @param shardBits number of first bits fixed by the shard (0 if none)
+	 * @param accept IDs that can be assigned
+	 */
+	public IDAllocator(int sizeID, int shardBits, Predicate<ID> accept) {
+		super();
+		this.ready = new ConcurrentLinkedQueue<Allocation>();
+		this.allocated = new AtomicLong(0);
+		this.collisions = new AtomicInteger(0);
+		this.accept = accept;
+		if(sizeID <= MAX_BITMAP_SIZE_ID) {
+			bitmap = new AtomicLongArray((int) Math.max(1, (1L << sizeID) / 64));
+			capacity = 1L << (sizeID - shardBits);
+		} else {
+			used = ConcurrentHashMap.newKeySet();
+			capacity = sizeID - shardBits < 63 ? 1L << (sizeID - shardBits) : -1;
+		}
+	}
+
+	/**
+	 * @return a contact with an ID never given before.
+	 * @throws IDSpaceExhaustedException if no free ID can be found
+	 */
+	public Contact next() {
+		Allocation allocation = ready.poll();
+		while(allocation == null) {
+			refill();
+			allocation = ready.poll();
+		}
+		collisions.addAndGet(allocation.collisions);
+		return allocation.contact;
+	}
+
+	public int getCollisions() {
+		return collisions.get();
+	}
+
+	private synchronized void refill() {
+		if(!ready.isEmpty()) return;
+		long free = capacity < 0 ? Long.MAX_VALUE : capacity - allocated.get();
+		if(free <= 0)
+			throw new IDSpaceExhaustedException("All the "+capacity+" IDs are already used");
+
+		int batch = (int) Math.min(BATCH, free);
+		IntStream.range(0, batch).parallel().forEach(i -> {
+			int used = 0;
+			for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+				Contact contact = randomContact();
+				if(contact == null || !accept.test(contact.getID()))
+					continue;
+				if(claim(contact.getID())) {
+					allocated.incrementAndGet();
+					ready.add(new Allocation(contact, used));
+					return;
+				}
+				used++;
+			}
+		});
+		if(ready.isEmpty())
+			throw new IDSpaceExhaustedException("No free ID found after "+(batch * MAX_ATTEMPTS)+
+					" attempts: "+allocated.get()+" of "+capacity+" IDs already used");
+	}
+
+	private boolean claim(ID id) {
+		if(bitmap == null)
+			return used.add(id);
+
+		long index = 0;
+		for(byte b : id.getBytes())
+			index = (index << 8) | (b & 0xFF);
+		int word = (int) (index / 64);
+		long mask = 1L << (index % 64);
+		long old;
+		do {
+			old = bitmap.get(word);
+			if((old & mask) != 0)
+				return false;
+		} while(!bitmap.compareAndSet(word, old, old | mask));
+		return true;
+	}
+
+	private static Contact randomContact() {
+		//Generated in parallel: ThreadLocalRandom avoids the contention of Math.random
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		short[] ip = new short[4];
+		for(int i = 0; i < 4 ; i++)
+			ip[i] = (short) random.nextInt(255);
+		try {
+			return new Contact(ip, random.nextInt(64331) + 1024);
+		} catch (InvalidPortException | InvalidIPException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
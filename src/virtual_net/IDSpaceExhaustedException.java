@@ -0,0 +1,11 @@
+package virtual_net;
+@SuppressWarnings("serial")
+/**
+ * Thrown when there are no more free IDs for new nodes, i.e. the number of
+ * nodes is getting too close to the 2^m IDs of the space.
+ */
+public class IDSpaceExhaustedException extends RuntimeException {
+	public IDSpaceExhaustedException(String message) {
+		super(message);
+	}
+}
@@ -3,56 +3,248 @@ package virtual_net;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import node.Contact;
 import node.Contact.ID;
 import node.Node;
 
 public class Internet {
-	private HashMap<ID, Node> allHost;
-	private int collisions = 0;
+	private ConcurrentHashMap<ID, Node> allHost;
+	// Same nodes of allHost, to pick the bootstrap in O(1).
+	private ArrayList<Node> hostList;
+	// Gives the unique IDs to the new nodes, created at the first request.
+	private IDAllocator allocator;
+	// Threads that process the mailboxes of the nodes, null if the RPCs are
+	// executed directly on the stack of the caller.
+	private Executor dispatcher;
+	// Messages sent and not yet processed by the nodes.
+	private AtomicLong pending;
+	// Sharding: this process hosts only the nodes whose first shardBits bits
+	// are equal to shardIndex, the other ones are reached through remotes.
+	private int shardIndex = 0;
+	private int shardBits = 0;
+	private RemoteShard[] remotes;
+	// Node of another shard used as bootstrap when this one is still empty.
+	private Contact seed;
+	// Range (ms) of the RTT assigned to each link between two nodes.
+	private int minRTT = 0;
+	private int maxRTT = 0;
 	
 	public Internet() {
-		allHost = new HashMap<ID, Node>();
+		this(null);
+	}
+
+	/**
+	 * Creates a network in which each node has its own mailbox: the RPCs are
+	 * delivered asynchronously to the mailbox of the recipient and processed
+	 * one at a time by the threads of the dispatcher (e.g. a ForkJoinPool or
+	 * an executor of virtual threads), so the nodes work independently.
+	 *
+	 * @param dispatcher threads that process the mailboxes; null to execute
+	 * the RPCs on the caller's stack
+	 */
+	public Internet(Executor dispatcher) {
+		allHost = new ConcurrentHashMap<ID, Node>();
+		hostList = new ArrayList<Node>();
+		this.dispatcher = dispatcher;
+		this.pending = new AtomicLong(0);
+	}
+
+	/**
+	 * Creates the mailbox for a new node, all the messages for the node
+	 * (RPCs and the work on its routing table) must be executed on it.
+	 *
+	 * @return the executor of the node's messages
+	 */
+	public Executor newMailbox() {
+		if(dispatcher == null)
+			return Runnable::run;
+		return new Mailbox(dispatcher, pending);
+	}
+
+	/**
+	 * Waits until all the messages sent in the network have been processed.
+	 */
+	public void awaitIdle() {
+		while(pending.get() != 0)
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+	}
+	
+	/**
+	 * Makes this network one of the shards of a simulation split among
+	 * several processes: the ID space is partitioned by the first bits of the
+	 * IDs and the RPCs for the nodes of the other shards are sent to their
+	 * processes through the loopback.
+	 * 
+	 * @param shardIndex index of this shard
+	 * @param ports ports of the RPC servers of all the shards (power of 2)
+	 */
+	void setShards(int shardIndex, int[] ports) {
+		this.shardIndex = shardIndex;
+		this.shardBits = Integer.numberOfTrailingZeros(ports.length);
+		this.remotes = new RemoteShard[ports.length];
+		for(int i = 0; i < ports.length; i++)
+			if(i != shardIndex)
+				remotes[i] = new RemoteShard(ports[i]);
+	}
+
+	void setSeed(Contact seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @param id id to check
+	 * @return index of the shard that hosts the id.
+	 */
+	private int shardOf(ID id) {
+		int shard = 0;
+		for(int i = 0; i < shardBits; i++)
+			shard = (shard << 1) | id.getBit(i);
+		return shard;
+	}
+
+	private boolean isLocal(ID id) {
+		return remotes == null || shardOf(id) == shardIndex;
 	}
 	
 	/**
 	 * Registers the node within the network, the network also communicates the
 	 * contact of its bootstrap node, this is a node taken randomly between the
 	 * nodes within the network.
+	 * The contact of the node must have been given by allocateContact, so its
+	 * ID is unique and belongs to this shard.
 	 *  
 	 * @return Contact bootstrap node
-	 * @throws CollisionException 
 	 */
-	public Contact connect(Node node) throws CollisionException  {
-		
-		if(allHost.containsKey(node.getID())) {
-			collisions++;
-			throw new CollisionException();
-		}
-		
-		Contact res = null;
-		if(allHost.size() != 0) {
-			ID[] temp = allHost.keySet().toArray(new ID[0]);
-			res = allHost.get(temp[(int) (Math.random()*temp.length)]).getContact();
-		}
+	public synchronized Contact connect(Node node) {
+		Contact res = seed;
+		if(hostList.size() != 0)
+			res = hostList.get((int) (Math.random()*hostList.size())).getContact();
 		allHost.put(node.getID(), node);
+		hostList.add(node);
 		return res;
 	}
 
+	/**
+	 * Gives the contact for a new node, its ID is different from those of all
+	 * the contacts given before (and it belongs to this shard).
+	 * The contacts are generated in parallel batches in advance.
+	 * 
+	 * @return the contact of the new node
+	 * @throws IDSpaceExhaustedException when no free ID can be found, i.e.
+	 * the nodes are too close to the 2^m IDs of the space
+	 */
+	public Contact allocateContact() {
+		return getAllocator().next();
+	}
+
+	private synchronized IDAllocator getAllocator() {
+		if(allocator == null)
+			allocator = new IDAllocator(Node.getSizeID(), shardBits, this::isLocal);
+		return allocator;
+	}
+
+	/**
+	 * Sets the range of the round trip times of the links: each pair of nodes
+	 * gets a fixed RTT in [minRTT, maxRTT], the same in both directions.
+	 * 
+	 * @param minRTT minimum RTT (ms)
+	 * @param maxRTT maximum RTT (ms)
+	 */
+	public void setLinkRTT(int minRTT, int maxRTT) {
+		this.minRTT = minRTT;
+		this.maxRTT = maxRTT;
+	}
+
+	/**
+	 * @return RTT (ms) of the link between the two contacts.
+	 */
+	public int getRTT(Contact a, Contact b) {
+		if(maxRTT <= minRTT) return minRTT;
+		//Mix of the two IDs independent of the order
+		int h = a.getID().hashCode() ^ b.getID().hashCode();
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return minRTT + Math.floorMod(h, maxRTT - minRTT + 1);
+	}
+
+	/**
+	 * @return time (ms) after which a request without answer is given up.
+	 */
+	public int getTimeout() {
+		return 2 * maxRTT;
+	}
+
+	/**
+	 * Disconnects a random fraction of the nodes from the network, from now on
+	 * they won't answer the requests.
+	 * 
+	 * @param fraction fraction of the nodes to disconnect
+	 */
+	public synchronized void failNodes(double fraction) {
+		ID[] ids = allHost.keySet().toArray(new ID[0]);
+		for(ID id : ids)
+			if(Math.random() < fraction)
+				allHost.remove(id);
+		hostList.removeIf(x -> !allHost.containsKey(x.getID()));
+	}
+
+	Collection<Node> getHosts() {
+		return allHost.values();
+	}
+
+	/**
+	 * @return number of random addresses discarded because their ID was
+	 * already used, while finding the IDs of the nodes.
+	 */
+	synchronized int getCollisions() {
+		return allocator == null ? 0 : allocator.getCollisions();
+	}
+
+	/**
+	 * Starts the periodic maintenance of all the nodes in the network.
+	 * 
+	 * @param wheel timer shared by all the nodes
+	 */
+	public void startMaintenance(TimingWheel wheel) {
+		for(Node node : allHost.values())
+			node.startMaintenance(wheel);
+	}
+
 	/**
 	 * Function that simulates a PING CPR on the recipient node by the sender node.
 	 * 
 	 * @param sender Node sending the request
 	 * @param recipient Contact you want to send the request to
-	 * @return True if the knot is alive and therefore is responding. False if 
-	 *  the node is not registered to the network or for some reason says it is not responding.
+	 * @return Future of the answer: True if the knot is alive and therefore is
+	 *  responding. False if the node is not registered to the network or for
+	 *  some reason says it is not responding.
 	 */
-	public boolean sendPING(Node sender, Contact recipient) {
-		Node node_recipient = allHost.get(recipient.getID());
-		if(node_recipient == null) return false;
-		return node_recipient.PING(sender.getContact());
+	public CompletableFuture<Boolean> sendPING(Node sender, Contact recipient) {
+		return sendPING(sender.getContact(), recipient.getID());
+	}
+
+	CompletableFuture<Boolean> sendPING(Contact sender, ID recipient) {
+		if(!isLocal(recipient))
+			return remotes[shardOf(recipient)].sendPING(sender, recipient);
+		Node node_recipient = allHost.get(recipient);
+		if(node_recipient == null) return CompletableFuture.completedFuture(false);
+		return deliver(node_recipient, () -> node_recipient.PING(sender));
 	}
 
 	/**
@@ -61,13 +253,30 @@ public class Internet {
 	 * @param sender Node sending the request
 	 * @param id ID that sender is looking for
 	 * @param recipient Contact you want to send the request to
-	 * @return Array of contacts, the list of contacts that the recipient knows
-	 * close to the specified id
+	 * @return Future of the array of contacts, the list of contacts that the
+	 * recipient knows close to the specified id (null if it's not in the network)
+	 */
+	public CompletableFuture<Contact[]> sendFIND_NODE(Node sender, ID id, Contact recipient) {
+		return sendFIND_NODE(sender.getContact(), id, recipient.getID());
+	}
+
+	CompletableFuture<Contact[]> sendFIND_NODE(Contact sender, ID id, ID recipient) {
+		if(!isLocal(recipient))
+			return remotes[shardOf(recipient)].sendFIND_NODE(sender, id, recipient);
+		Node node_recipient = allHost.get(recipient);
+		if(node_recipient == null) return CompletableFuture.completedFuture(null);
+		return deliver(node_recipient, () -> node_recipient.FIND_NODE(sender, id));
+	}
+
+	/**
+	 * Delivers the message in the mailbox of the recipient.
+	 * 
+	 * @param recipient Node that has to process the message
+	 * @param message RPC handler to execute on the recipient
+	 * @return Future of the result of the handler
 	 */
-	public Contact[] sendFIND_NODE(Node sender, ID id, Contact recipient) {
-		Node node_recipient = allHost.get(recipient.getID());
-		if(node_recipient == null) return null;
-		return node_recipient.FIND_NODE(sender.getContact(), id);
+	private <T> CompletableFuture<T> deliver(Node recipient, Supplier<T> message) {
+		return CompletableFuture.supplyAsync(message, recipient.getMailbox());
 	}
 
 	/**
@@ -79,7 +288,7 @@ public class Internet {
 	 */
 	public void saveNetwork(String filename) {
 		try {
-			FileWriter file = new FileWriter(new File("C-"+collisions+"_"+filename));
+			FileWriter file = new FileWriter(new File("C-"+getCollisions()+"_"+filename));
 
 			for(ID key : allHost.keySet()) 
 				file.write(allHost.get(key).getCvsEdge()+"\n");
@@ -89,11 +298,112 @@ public class Internet {
 		} catch(IOException e) {e.printStackTrace();}
 	}
 	
-	// Mainly useless function (random IP)
-	public short[] myIP() {
-		short[] ip = new short[4];
-		for(int i = 0; i < 4 ; i++)
-			ip[i] = (short) (Math.random()*255);
-		return ip;
+	/**
+	 * Computes some statistics on the routing tables of all the nodes in the
+	 * network: the average number of buckets, contacts and structural slots
+	 * (memory) per node and the quality of the routing, that is the average
+	 * fraction of its real k closest nodes that a random node has in its
+	 * table (the neighbourhood the lookups converge to).
+	 *
+	 * @param samples number of random nodes used for the quality
+	 * @return string with the statistics
+	 */
+	public String getTableStats(int samples) {
+		Node[] nodes = allHost.values().toArray(new Node[0]);
+		if(nodes.length == 0) return "Empty network";
+
+		long buckets = 0, contacts = 0, slots = 0;
+		for(Node node : nodes) {
+			buckets += node.getBucketCount();
+			contacts += node.getContactCount();
+			slots += node.getTableSlotCount();
+		}
+
+		double quality = 0;
+		for(int s = 0; s < samples; s++) {
+			Node node = nodes[(int) (Math.random()*nodes.length)];
+			Contact[] real = getClosest(nodes, node, node.getID());
+			if(real.length == 0) {
+				quality += 1;
+				continue;
+			}
+
+			HashSet<Contact> known = new HashSet<Contact>(Arrays.asList(node.getKnownContacts(node.getID())));
+			int found = 0;
+			for(Contact c : real)
+				if(known.contains(c)) found++;
+			quality += (double) found / real.length;
+		}
+
+		return String.format("Nodes:%d Buckets/node:%.2f Contacts/node:%.2f Slots/node:%.2f Quality:%.4f",
+				nodes.length, (double) buckets / nodes.length, (double) contacts / nodes.length,
+				(double) slots / nodes.length, samples == 0 ? 0 : quality / samples);
+	}
+
+	/**
+	 * Finds the real k closest nodes to the id, keeping only the best k while
+	 * scanning the nodes instead of sorting all of them.
+	 *
+	 * @param nodes all the nodes of the network
+	 * @param exclude node not to count (who asks)
+	 * @param id id to which the nodes must be close
+	 * @return the k closest contacts, ordered by distance
+	 */
+	private static Contact[] getClosest(Node[] nodes, Node exclude, ID id) {
+		Contact[] closest = new Contact[Math.min(Node.getSizeBuckets(), nodes.length - 1)];
+		int count = 0;
+		for(Node node : nodes) {
+			if(node == exclude) continue;
+			Contact c = node.getContact();
+			if(count == closest.length && (count == 0 || Contact.compareFormID(c, closest[count - 1], id) >= 0))
+				continue;
+			int i = count < closest.length ? count++ : count - 1;
+			for(; i > 0 && Contact.compareFormID(c, closest[i - 1], id) < 0; i--)
+				closest[i] = closest[i - 1];
+			closest[i] = c;
+		}
+		return closest;
+	}
+
+	/**
+	 * Executes lookups of random ids from random nodes with the requested
+	 * strategy and reports the average hops, virtual latency, messages and
+	 * quality (fraction of the real k closest nodes found).
+	 * 
+	 * @param samples number of lookups
+	 * @param mode lookup strategy
+	 * @return string with the statistics
+	 */
+	public String getLookupStats(int samples, Node.LookupMode mode) {
+		Node[] nodes = allHost.values().toArray(new Node[0]);
+		if(nodes.length == 0 || samples == 0) return "Empty network";
+
+		long hops = 0, latency = 0, messages = 0;
+		double quality = 0;
+		for(int s = 0; s < samples; s++) {
+			Node node = nodes[(int) (Math.random()*nodes.length)];
+			ID target = ID.random();
+			Node.LookupResult result = node.findNode(target, mode);
+			hops += result.getHops();
+			latency += result.getLatency();
+			messages += result.getMessages();
+
+			Contact[] real = getClosest(nodes, node, target);
+			if(real.length == 0) {
+				quality += 1;
+				continue;
+			}
+
+			HashSet<Contact> found = new HashSet<Contact>(Arrays.asList(result.getClosest()));
+			int hits = 0;
+			for(Contact c : real)
+				if(found.contains(c)) hits++;
+			quality += (double) hits / real.length;
+		}
+		awaitIdle();
+
+		return String.format("%s Hops:%.2f Latency:%.1fms Messages:%.2f Quality:%.4f", mode,
+				(double) hops / samples, (double) latency / samples,
+				(double) messages / samples, quality / samples);
 	}
 }
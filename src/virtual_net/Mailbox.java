@@ -0,0 +1,74 @@
+package virtual_net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mailbox of a node. The messages sent to the node are queued and executed
+ * one at a time, in order of arrival, by the threads of a dispatcher shared
+ * by all the nodes, so the node never handles two messages at the same time
+ * and doesn't need any lock on its state.
+ */
+class Mailbox implements Executor, Runnable {
+	// Messages processed before leaving the thread to the other mailboxes.
+	private static final int THROUGHPUT = 64;
+
+	private ConcurrentLinkedQueue<Runnable> queue;
+	private AtomicBoolean scheduled;
+	private Executor dispatcher;
+	// Messages queued or running in all the mailboxes of the network.
+	private AtomicLong pending;
+
+	/**
+	 * @param dispatcher threads on which the mailbox is processed
+	 * @param pending counter of the messages not yet processed in the network
+	 */
+	public Mailbox(Executor dispatcher, AtomicLong pending) {
+		super();
+		this.queue = new ConcurrentLinkedQueue<Runnable>();
+		this.scheduled = new AtomicBoolean(false);
+		this.dispatcher = dispatcher;
+		this.pending = pending;
+	}
+
+	/**
+	 * Queues the message and, if the mailbox is not already waiting or
+	 * running, schedules it on the dispatcher.
+	 *
+	 * @param message task to execute on the node
+	 */
+	@Override
+	public void execute(Runnable message) {
+		pending.incrementAndGet();
+		queue.add(message);
+		schedule();
+	}
+
+	private void schedule() {
+		if(scheduled.compareAndSet(false, true))
+			dispatcher.execute(this);
+	}
+
+	@Override
+	public void run() {
+		try {
+			for(int i = 0; i < THROUGHPUT; i++) {
+				Runnable message = queue.poll();
+				if(message == null) break;
+				try {
+					message.run();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		} finally {
+			scheduled.set(false);
+			if(!queue.isEmpty())
+				schedule();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package virtual_net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import node.Contact;
+import node.Contact.ID;
+
+/**
+ * Client side of the RPCs towards the nodes hosted by another process.
+ * The connections on the loopback are kept in a pool and each one carries a
+ * request at a time; the calls are made on their own threads so that the
+ * mailboxes of the local nodes are never blocked waiting for the network.
+ *
+ * @see ShardServer
+ */
+class RemoteShard {
+	// Threads that wait the answers of the other processes.
+	private static final ExecutorService io = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "shard-io");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static class Connection {
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		public Connection(int port) throws IOException {
+			super();
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	private interface Call<T> {
+		T execute(Connection connection) throws IOException;
+	}
+
+	private int port;
+	private ConcurrentLinkedQueue<Connection> pool;
+
+	/**
+	 * @param port port of the RPC server of the shard on the loopback
+	 */
+	public RemoteShard(int port) {
+		super();
+		this.port = port;
+		this.pool = new ConcurrentLinkedQueue<Connection>();
+	}
+
+	/**
+	 * Executes the call on a free connection (opening a new one if needed).
+	 * If the other process can't be reached the answer is the one of a node
+	 * that is not in the network.
+	 */
+	private <T> CompletableFuture<T> call(Call<T> call, T unreachable) {
+		return CompletableFuture.supplyAsync(() -> {
+			Connection connection = pool.poll();
+			try {
+				if(connection == null)
+					connection = new Connection(port);
+				T res = call.execute(connection);
+				pool.add(connection);
+				return res;
+			} catch (IOException e) {
+				if(connection != null)
+					connection.close();
+				return unreachable;
+			}
+		}, io);
+	}
+
+	public CompletableFuture<Boolean> sendPING(Contact sender, ID recipient) {
+		return call(c -> {
+			c.out.writeByte(Codec.PING);
+			Codec.writeContact(c.out, sender);
+			Codec.writeID(c.out, recipient);
+			c.out.flush();
+			return c.in.readBoolean();
+		}, false);
+	}
+
+	public CompletableFuture<Contact[]> sendFIND_NODE(Contact sender, ID id, ID recipient) {
+		return call(c -> {
+			c.out.writeByte(Codec.FIND_NODE);
+			Codec.writeContact(c.out, sender);
+			Codec.writeID(c.out, recipient);
+			Codec.writeID(c.out, id);
+			c.out.flush();
+			return Codec.readContacts(c.in);
+		}, null);
+	}
+}
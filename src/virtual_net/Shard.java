@@ -0,0 +1,120 @@
+package virtual_net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import node.Node;
+
+/**
+ * Process that hosts one shard of a sharded simulation, started by the
+ * Coordinator. It registers the port of its RPC server with the coordinator
+ * and then executes its commands: create the seed node of the network,
+ * build its part of the network and send back the edges of its nodes.
+ *
+ * @see Coordinator
+ */
+public class Shard {
+	static final byte SEED = 0;
+	static final byte BUILD = 1;
+	static final byte SAVE = 2;
+	static final byte EXIT = 3;
+
+	/**
+	 * @param args port of the coordinator, index of the shard, number of bit
+	 * Key, number of nodes of the shard, size of the buckets, table type and
+	 * number of threads.
+	 */
+	public static void main(String[] args) throws Exception {
+		int coordinatorPort = Integer.parseInt(args[0]);
+		int index = Integer.parseInt(args[1]);
+		int m = Integer.parseInt(args[2]);
+		int n = Integer.parseInt(args[3]);
+		int k = Integer.parseInt(args[4]);
+		Node.TableType type = Node.TableType.valueOf(args[5]);
+		int threads = Integer.parseInt(args[6]);
+
+		Node.setSizeID(m);
+		Node.setSizeBuckets(k);
+
+		// The RPCs arrive from other threads so the nodes always need the mailboxes.
+		Internet internet = new Internet(new ForkJoinPool(threads));
+		ShardServer server = new ShardServer(internet);
+
+		try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), coordinatorPort)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			out.writeInt(index);
+			out.writeInt(server.getPort());
+			out.flush();
+
+			int[] ports = new int[in.readInt()];
+			for(int i = 0; i < ports.length; i++)
+				ports[i] = in.readInt();
+			internet.setShards(index, ports);
+
+			while(true) {
+				switch(in.readByte()) {
+					case SEED:
+						Codec.writeContact(out, new Node(internet, type).getContact());
+						n--;
+						break;
+					case BUILD:
+						internet.setSeed(Codec.readContact(in));
+						long time = System.nanoTime();
+						build(internet, n, type, threads);
+						out.writeLong((System.nanoTime() - time) / 1000000);
+						break;
+					case SAVE:
+						for(Node node : internet.getHosts()) {
+							//Read on the mailbox, other shards may still be sending RPCs
+							String edges = CompletableFuture.supplyAsync(node::getCvsEdge, node.getMailbox()).join();
+							byte[] bytes = (edges + "\n").getBytes(StandardCharsets.UTF_8);
+							out.writeInt(bytes.length);
+							out.write(bytes);
+						}
+						out.writeInt(-1);
+						out.writeInt(internet.getCollisions());
+						break;
+					case EXIT:
+						server.close();
+						return;
+				}
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Creates the nodes of the shard making them join in parallel, the first
+	 * node that can't join stops the shard.
+	 */
+	private static void build(Internet internet, int n, Node.TableType type, int threads) throws InterruptedException {
+		ExecutorService joining = Executors.newFixedThreadPool(threads);
+		List<Future<Node>> joins = new ArrayList<Future<Node>>();
+		for(int i = 0; i < n; i++)
+			joins.add(joining.submit(() -> new Node(internet, type)));
+		joining.shutdown();
+		try {
+			for(Future<Node> join : joins)
+				join.get();
+		} catch (ExecutionException e) {
+			joining.shutdownNow();
+			throw new IllegalStateException("Shard not built", e.getCause());
+		}
+		internet.awaitIdle();
+	}
+}
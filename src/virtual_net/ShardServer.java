@@ -0,0 +1,87 @@
+package virtual_net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import node.Contact;
+import node.Contact.ID;
+
+/**
+ * Server side of the RPCs sent by the other processes to the nodes of this
+ * shard: every connection is served by its own thread that delivers the
+ * requests to the local network and sends back the answers.
+ *
+ * @see RemoteShard
+ */
+class ShardServer {
+	private Internet internet;
+	private ServerSocket server;
+
+	/**
+	 * Opens the server on a free port of the loopback.
+	 *
+	 * @param internet network of the local nodes
+	 */
+	public ShardServer(Internet internet) throws IOException {
+		super();
+		this.internet = internet;
+		this.server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::accept, "shard-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	private void accept() {
+		try {
+			while(true) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread handler = new Thread(() -> serve(socket), "shard-connection");
+				handler.setDaemon(true);
+				handler.start();
+			}
+		} catch (IOException e) {}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while(true) {
+				byte type = in.readByte();
+				Contact sender = Codec.readContact(in);
+				ID recipient = Codec.readID(in);
+				if(type == Codec.PING)
+					out.writeBoolean(internet.sendPING(sender, recipient).join());
+				else
+					Codec.writeContacts(out, internet.sendFIND_NODE(sender, Codec.readID(in), recipient).join());
+				out.flush();
+			}
+		} catch (EOFException e) {
+			//The other process closed the connection
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+	}
+}
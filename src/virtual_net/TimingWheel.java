@@ -0,0 +1,110 @@
+package virtual_net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Timer shared by all the nodes of the network to schedule their periodic
+ * work. The time is divided in ticks and the tasks are kept in a circular
+ * array of slots (the wheel): scheduling and expiring a task costs O(1)
+ * regardless of how many tasks are waiting, so a single wheel can serve any
+ * number of nodes without one thread (or one timer) for each of them.
+ *
+ * The clock of the wheel is virtual: it moves forward only when the
+ * simulation calls tick(), which returns once the expired tasks (executed in
+ * parallel by the workers) are done, so the tasks of a tick all see the same
+ * time.
+ */
+public class TimingWheel {
+
+	private static class Timeout {
+		private Runnable task;
+		// Complete turns of the wheel still to wait.
+		private long rounds;
+
+		public Timeout(Runnable task, long rounds) {
+			super();
+			this.task = task;
+			this.rounds = rounds;
+		}
+	}
+
+	private long tickMillis;
+	private ArrayList<LinkedList<Timeout>> wheel;
+	private long currentTick = 0;
+	// Where the expired tasks are executed.
+	private Executor workers;
+
+	/**
+	 * @param tickMillis duration (ms) of a tick, the precision of the timer
+	 * @param size number of slots of the wheel
+	 * @param workers executor of the expired tasks (Runnable::run to execute
+	 * them one at a time on the thread that moves the clock)
+	 */
+	public TimingWheel(long tickMillis, int size, Executor workers) {
+		super();
+		this.tickMillis = tickMillis;
+		this.workers = workers;
+		wheel = new ArrayList<LinkedList<Timeout>>(size);
+		for(int i = 0; i < size; i++)
+			wheel.add(new LinkedList<Timeout>());
+	}
+
+	/**
+	 * @return current time (ms) of the virtual clock.
+	 */
+	public synchronized long now() {
+		return currentTick * tickMillis;
+	}
+
+	/**
+	 * Schedules the task to be executed once after the delay.
+	 *
+	 * @param task work to do
+	 * @param delayMillis delay (ms), rounded up to the next tick
+	 */
+	public synchronized void schedule(Runnable task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+		int slot = (int) ((currentTick + ticks) % wheel.size());
+		wheel.get(slot).add(new Timeout(task, (ticks - 1) / wheel.size()));
+	}
+
+	/**
+	 * Moves the clock forward by one tick and executes the expired tasks,
+	 * waiting for all of them.
+	 */
+	public void tick() {
+		LinkedList<Runnable> expired = new LinkedList<Runnable>();
+		synchronized (this) {
+			currentTick++;
+			Iterator<Timeout> it = wheel.get((int) (currentTick % wheel.size())).iterator();
+			while(it.hasNext()) {
+				Timeout timeout = it.next();
+				if(timeout.rounds == 0) {
+					expired.add(timeout.task);
+					it.remove();
+				} else
+					timeout.rounds--;
+			}
+		}
+		//Out of the lock so that the tasks can schedule again
+		CompletableFuture<?>[] running = new CompletableFuture<?>[expired.size()];
+		int i = 0;
+		for(Runnable task : expired)
+			running[i++] = CompletableFuture.runAsync(task, workers);
+		CompletableFuture.allOf(running).join();
+	}
+
+	/**
+	 * Moves the clock forward executing all the tasks that expire meanwhile.
+	 *
+	 * @param millis time (ms) to let pass
+	 */
+	public void advance(long millis) {
+		for(long i = 0; i < millis / tickMillis; i++)
+			tick();
+	}
+}